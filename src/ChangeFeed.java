@@ -0,0 +1,253 @@
+package grades;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Feed of the changes made to the students of a Trie.
+ * The Trie publishes a MutationEvent on its feed for every mark it adds,
+ * changes or removes. Subscribers receive the events in batches through the
+ * java.util.concurrent.Flow interfaces and each requested item is one batch
+ * of at most maxBatch events.
+ *
+ * The feed keeps the last events in a bounded ring buffer shared by all
+ * subscribers, and every subscriber only keeps the sequence number of the
+ * next event it has to receive. Writers never wait for subscribers: when the
+ * ring is full the oldest event is overwritten, and a subscriber that was too
+ * slow to read it is terminated with an error. It can then subscribe again
+ * from the sequence it had reached, if still retained, or from the oldest
+ * retained one. Events are delivered on the given executor, never on the
+ * writer's thread.
+ *
+ * Publishing an event has time complexity O(s), s being the number of
+ * subscribers, as each of them is only notified.
+ *
+ * @author Thomas Cilloni
+ */
+public class ChangeFeed {
+    private final MutationEvent[] log; // ring buffer of the retained events
+    private final int maxBatch; // maximum number of events per onNext
+    private final Executor executor; // delivers the events to the subscribers
+    private final List<FeedSubscription> subscriptions;
+    private long nextSequence; // sequence of the next published event
+
+    /**
+     * Initialize a feed delivering events on the common pool.
+     *
+     * @param capacity number of events retained for slow or resuming subscribers
+     * @param maxBatch maximum number of events delivered in one batch
+     */
+    public ChangeFeed(int capacity, int maxBatch) {
+        this(capacity, maxBatch, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Initialize a feed.
+     *
+     * @param capacity number of events retained for slow or resuming subscribers
+     * @param maxBatch maximum number of events delivered in one batch
+     * @param executor executor delivering the events to the subscribers
+     */
+    public ChangeFeed(int capacity, int maxBatch, Executor executor) {
+        if (capacity < 1 || maxBatch < 1)
+            throw new IllegalArgumentException("Capacity and batch size must be positive");
+
+        log = new MutationEvent[capacity];
+        this.maxBatch = maxBatch;
+        this.executor = executor;
+        subscriptions = new CopyOnWriteArrayList<>();
+        nextSequence = 1;
+    }
+
+    /**
+     * Publish a change of a student's mark.
+     * The event is stored in the ring buffer, overwriting the oldest one if
+     * full, and the subscribers are notified. Nothing is published if the
+     * mark did not actually change.
+     *
+     * @param student name of the changed student
+     * @param module name of the changed module
+     * @param oldMark mark before the change, null if there was none
+     * @param newMark mark after the change, null if removed
+     */
+    public void publish(String student, String module, Integer oldMark, Integer newMark) {
+        if (oldMark == null ? newMark == null : oldMark.equals(newMark))
+            return;
+
+        synchronized (this) {
+            log[(int) (nextSequence % log.length)] =
+                    new MutationEvent(nextSequence, student, module, oldMark, newMark);
+            nextSequence++;
+        }
+
+        for (FeedSubscription subscription: subscriptions)
+            subscription.signal();
+    }
+
+    /**
+     * Subscribe to the events published from now on.
+     *
+     * @param subscriber receiver of the batches of events
+     */
+    public void subscribe(Flow.Subscriber<? super List<MutationEvent>> subscriber) {
+        subscribe(subscriber, getNextSequence());
+    }
+
+    /**
+     * Subscribe to the events starting from the given sequence number.
+     * Consumers resuming after a disconnection pass the sequence following
+     * the last event they processed. If that event is no longer retained
+     * the subscriber receives an error straight away.
+     *
+     * @param subscriber receiver of the batches of events
+     * @param fromSequence sequence of the first event to receive
+     */
+    public void subscribe(Flow.Subscriber<? super List<MutationEvent>> subscriber, long fromSequence) {
+        FeedSubscription subscription = new FeedSubscription(subscriber, fromSequence);
+        subscriptions.add(subscription);
+        // the first delivery hands the subscription to the subscriber
+        subscription.signal();
+    }
+
+    /**
+     * Get the sequence number the next published event will have.
+     *
+     * @return the sequence of the next event
+     */
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Get the sequence number of the oldest event still retained.
+     *
+     * @return the oldest sequence a subscriber can resume from
+     */
+    public synchronized long getOldestSequence() {
+        return Math.max(1, nextSequence - log.length);
+    }
+
+    /**
+     * Read a batch of events from the ring buffer.
+     *
+     * @param from sequence of the first event to read
+     * @param max maximum number of events to read
+     * @return the events read, possibly none, or null if from is no longer retained
+     */
+    private synchronized List<MutationEvent> read(long from, long max) {
+        if (from < getOldestSequence())
+            return null;
+
+        List<MutationEvent> batch = new ArrayList<>();
+        for (long s = from; s < nextSequence && batch.size() < max; s++)
+            batch.add(log[(int) (s % log.length)]);
+        return batch;
+    }
+
+    /**
+     * Subscription of a single subscriber.
+     * Delivery runs on the executor and at most one delivery per subscription
+     * is running at any time: signals arriving while delivering make the
+     * running delivery loop again instead of starting a new one.
+     */
+    private class FeedSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super List<MutationEvent>> subscriber;
+        private final AtomicLong demand = new AtomicLong(); // batches requested
+        private final AtomicInteger pending = new AtomicInteger(); // signals not yet handled
+        private long cursor; // sequence of the next event to deliver
+        private volatile boolean cancelled;
+        private volatile Throwable failure; // error to report, if any
+        private boolean started; // if onSubscribe was called
+
+        private FeedSubscription(Flow.Subscriber<? super List<MutationEvent>> subscriber, long from) {
+            this.subscriber = subscriber;
+            cursor = from;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0)
+                failure = new IllegalArgumentException("Requested "+n+" batches, must be positive");
+            else
+                // add the demand, capping it at Long.MAX_VALUE
+                demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+
+        private void signal() {
+            // only the first pending signal starts a delivery
+            if (!cancelled && pending.getAndIncrement() == 0)
+                executor.execute(this::deliver);
+        }
+
+        private void deliver() {
+            int missed = 1;
+
+            if (!started) {
+                started = true;
+                // a subscriber failing in its callbacks is cancelled, or it
+                // would stay registered without ever being delivered again
+                try {
+                    subscriber.onSubscribe(this);
+                } catch (Throwable e) {
+                    terminate(e);
+                    return;
+                }
+            }
+
+            while (true) {
+                while (!cancelled) {
+                    if (failure != null) {
+                        terminate(failure);
+                        return;
+                    }
+
+                    // a batch is read even without demand, to detect lagging early
+                    List<MutationEvent> batch = read(cursor, demand.get() > 0 ? maxBatch : 0);
+                    if (batch == null) {
+                        terminate(new IllegalStateException("Subscriber lagged behind, event "
+                                +cursor+" is no longer retained (oldest is "+getOldestSequence()+")"));
+                        return;
+                    }
+                    if (batch.isEmpty())
+                        break;
+
+                    cursor += batch.size();
+                    demand.decrementAndGet();
+                    try {
+                        subscriber.onNext(batch);
+                    } catch (Throwable e) {
+                        terminate(e);
+                        return;
+                    }
+                }
+
+                // stop only if no signal arrived meanwhile
+                missed = pending.addAndGet(-missed);
+                if (missed == 0)
+                    return;
+            }
+        }
+
+        private void terminate(Throwable error) {
+            cancel();
+            // there is no one left to report a failing onError to
+            try {
+                subscriber.onError(error);
+            } catch (Throwable ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package grades;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Asynchronous front door to a StudentDatabase, either a Trie or an OffHeapTrie.
+ * Callers submit insert, removeName and removeCourses commands and
+ * immediately get a CompletableFuture of their result. Commands are put in a
+ * bounded ring buffer and a single writer thread takes them out in batches
+ * of at most maxBatch commands and applies them to the database. As only the
+ * writer ever touches the database, mutations need no locks.
+ *
+ * Reads do not go through the writer: after each batch the writer publishes
+ * the new marks of every changed student in a concurrent view, holding an
+ * unmodifiable copy of the marks of each student, and getMarks and
+ * getStudents read from it from any thread. A future completes only after
+ * its change is visible in the view, so a caller always reads its own writes.
+ *
+ * When the ring buffer is full, new commands fail straight away with a
+ * FullException (a RejectedExecutionException, like the one of a closed
+ * pipeline, but worth retrying) instead of making the caller wait, so a burst
+ * can never stall the callers for longer than the buffer allows. Commands
+ * without a student's name are rejected with an IllegalArgumentException.
+ *
+ * Futures are completed on the writer thread: long actions depending on
+ * them should use the async variants of CompletableFuture. Such actions may
+ * call close(), which then returns straight away and lets the writer stop
+ * once the commands already accepted are applied.
+ *
+ * @author Thomas Cilloni
+ */
+public class CommandPipeline implements AutoCloseable {
+    // command telling the writer to stop
+    private static final Command<Void> STOP = new Command<>(null, null);
+
+    private final StudentDatabase database; // only used by the writer thread
+    private final ArrayBlockingQueue<Command<?>> ring; // commands waiting for the writer
+    private final int maxBatch; // maximum number of commands applied per batch
+    private final ConcurrentHashMap<String, Map<String, Integer>> view; // published marks
+    private final Thread writer;
+    // submitters share the lock to enqueue, closing takes it exclusively,
+    // so no command can be enqueued after the pipeline is closed
+    private final ReadWriteLock state = new ReentrantReadWriteLock();
+    private volatile boolean open;
+
+    /**
+     * Start a pipeline in front of the given database.
+     * The database must not be used directly anymore, as the writer thread
+     * owns it from now on.
+     *
+     * @param database the database to apply commands to
+     * @param capacity maximum number of commands waiting in the ring buffer
+     * @param maxBatch maximum number of commands applied per batch
+     */
+    public CommandPipeline(StudentDatabase database, int capacity, int maxBatch) {
+        if (capacity < 1 || maxBatch < 1)
+            throw new IllegalArgumentException("Capacity and batch size must be positive");
+
+        this.database = database;
+        ring = new ArrayBlockingQueue<>(capacity);
+        this.maxBatch = maxBatch;
+
+        // publish the students already in the database
+        view = new ConcurrentHashMap<>();
+        database.forEachStudent((name, marks) ->
+                view.put(name, Collections.unmodifiableMap(new HashMap<>(marks))));
+
+        open = true;
+        writer = new Thread(this::write, "trie-writer");
+        writer.start();
+    }
+
+    /**
+     * Submit the insertion or update of a student.
+     *
+     * @param name name of the student to add/update
+     * @param marks HashMap of course-grade pairs
+     * @return a future completing once the student is updated
+     */
+    public CompletableFuture<Void> insert(String name, HashMap<String, Integer> marks) {
+        // copy the marks, the caller may change them before the writer runs
+        HashMap<String, Integer> copy = new HashMap<>(marks);
+        return submit(name, trie -> {
+            trie.insert(name, copy);
+            return null;
+        });
+    }
+
+    /**
+     * Submit the removal of a student.
+     *
+     * @param name of the student to remove
+     * @return a future of true if removed successfully, false otherwise
+     */
+    public CompletableFuture<Boolean> removeName(String name) {
+        return submit(name, trie -> trie.removeName(name));
+    }
+
+    /**
+     * Submit the removal of courses from a student.
+     *
+     * @param data must contain the student's name at index 0 and the
+     * module names at the other indexes
+     * @return a future of the number of removed courses, -1 if the student was not found
+     */
+    public CompletableFuture<Integer> removeCourses(String data[]) {
+        String[] copy = data.clone();
+        return submit(copy.length > 0 ? copy[0] : null, trie -> trie.removeCourses(copy));
+    }
+
+    /**
+     * Get the marks of a student from the published view.
+     * This method can be called from any thread and never waits for the writer.
+     *
+     * @param name of the student to look for
+     * @return an unmodifiable map of the student's marks, or null if not found
+     */
+    public Map<String, Integer> getMarks(String name) {
+        return view.get(name);
+    }
+
+    /**
+     * Get a list of mark-student strings following the given course.
+     * The list is built from the published view and ordered like the one of
+     * the Trie: by marks (high to low) and, where marks are the same,
+     * alphabetically by name.
+     *
+     * The time complexity is O(n log n), n being the number of students.
+     *
+     * @param module name of the course
+     * @return a list of ordered strings to print on screen
+     */
+    public List<String> getStudents(String module) {
+        List<Map.Entry<String, Integer>> students = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Integer>> student: view.entrySet()) {
+            Integer mark = student.getValue().get(module);
+            if (mark != null)
+                students.add(Map.entry(student.getKey(), mark));
+        }
+
+        // descending order for marks, then alphabetical for names
+        students.sort((a, b) -> {
+            int byMark = b.getValue().compareTo(a.getValue());
+            return byMark != 0 ? byMark : a.getKey().compareTo(b.getKey());
+        });
+
+        List<String> finalList = new ArrayList<>();
+        for (Map.Entry<String, Integer> student: students)
+            finalList.add(student.getValue()+"\t"+student.getKey());
+        return finalList;
+    }
+
+    /**
+     * Stop the pipeline.
+     * Commands already accepted are applied before the writer stops, new ones
+     * are rejected. The method returns once the writer thread is done or, if
+     * the calling thread is interrupted, as soon as the writer has been told
+     * to stop, leaving the thread's interrupt flag set. Called from the
+     * writer thread (by an action depending on a future) it does not wait,
+     * as the writer stops by itself after the current batch.
+     */
+    @Override
+    public void close() {
+        boolean stop;
+        boolean interrupted = false;
+
+        state.writeLock().lock();
+        try {
+            stop = open;
+            open = false;
+        } finally {
+            state.writeLock().unlock();
+        }
+
+        // the writer can not wait for itself: once closed, it stops as soon
+        // as the ring is empty
+        if (Thread.currentThread() == writer)
+            return;
+
+        // the writer is always draining the ring, so there is soon room for STOP
+        while (stop) {
+            try {
+                ring.put(STOP);
+                stop = false;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        try {
+            if (!interrupted)
+                writer.join();
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private <T> CompletableFuture<T> submit(String student, Function<StudentDatabase, T> action) {
+        Command<T> command = new Command<>(student, action);
+
+        if (student == null) {
+            command.result.completeExceptionally(new IllegalArgumentException("Student's name is missing"));
+            return command.result;
+        }
+
+        state.readLock().lock();
+        try {
+            if (!open)
+                command.result.completeExceptionally(new RejectedExecutionException("Pipeline is closed"));
+            else if (!ring.offer(command))
+                command.result.completeExceptionally(new FullException());
+        } finally {
+            state.readLock().unlock();
+        }
+
+        return command.result;
+    }
+
+    /**
+     * Body of the writer thread.
+     * Waits for a command, takes as many others as are ready (up to maxBatch),
+     * applies them all, publishes the changed students and only then
+     * completes the futures of the batch. If the writer ever stops, the
+     * pipeline is closed and every command still waiting is failed, so
+     * no future is left pending.
+     */
+    private void write() {
+        List<Command<?>> batch = new ArrayList<>(maxBatch);
+        Set<String> changed = new HashSet<>();
+        boolean stop = false;
+
+        try {
+            while (!stop) {
+                try {
+                    batch.add(ring.take());
+                } catch (InterruptedException e) {
+                    // only close() can stop the writer
+                    continue;
+                }
+                ring.drainTo(batch, maxBatch-1);
+
+                for (Command<?> command: batch) {
+                    if (command == STOP)
+                        stop = true;
+                    else {
+                        command.apply(database);
+                        changed.add(command.student);
+                    }
+                }
+
+                // publish the new state of the changed students; if that fails
+                // the view may be stale, and the commands report it
+                try {
+                    for (String name: changed) {
+                        Node student = database.getNode(name);
+                        if (student == null)
+                            view.remove(name);
+                        else
+                            view.put(name, Collections.unmodifiableMap(new HashMap<>(student.getMarks())));
+                    }
+                } catch (Throwable e) {
+                    for (Command<?> command: batch)
+                        command.fail(e);
+                }
+
+                for (Command<?> command: batch)
+                    command.complete();
+
+                batch.clear();
+                changed.clear();
+
+                // nothing can be enqueued once closed, so an empty ring is final
+                if (!open && ring.isEmpty())
+                    stop = true;
+            }
+        } finally {
+            state.writeLock().lock();
+            try {
+                open = false;
+            } finally {
+                state.writeLock().unlock();
+            }
+
+            // nothing can be enqueued anymore: fail what will never be applied
+            RejectedExecutionException closed = new RejectedExecutionException("Pipeline is closed");
+            for (Command<?> command: batch)
+                command.result.completeExceptionally(closed);
+            for (Command<?> command = ring.poll(); command != null; command = ring.poll())
+                command.result.completeExceptionally(closed);
+        }
+    }
+
+    /**
+     * A command waiting for the writer, with the future of its result.
+     */
+    private static class Command<T> {
+        private final String student; // name of the student the command changes
+        private final Function<StudentDatabase, T> action;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private T value;
+        private Throwable failure;
+
+        private Command(String student, Function<StudentDatabase, T> action) {
+            this.student = student;
+            this.action = action;
+        }
+
+        private void apply(StudentDatabase database) {
+            // a failing command must not stop the writer
+            try {
+                value = action.apply(database);
+            } catch (Throwable e) {
+                failure = e;
+            }
+        }
+
+        private void fail(Throwable e) {
+            if (failure == null)
+                failure = e;
+        }
+
+        private void complete() {
+            if (failure != null)
+                result.completeExceptionally(failure);
+            else
+                result.complete(value);
+        }
+    }
+
+    /**
+     * Failure of a command submitted while the ring buffer was full.
+     * Unlike other rejections, the same command can be submitted again
+     * once the writer has made room.
+     */
+    public static class FullException extends RejectedExecutionException {
+        private static final long serialVersionUID = 1L;
+
+        private FullException() {
+            super("Pipeline is full");
+        }
+    }
+}
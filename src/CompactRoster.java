@@ -0,0 +1,374 @@
+package grades;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Read-only compact copy of a Trie of students.
+ * A Trie only shares the beginning of the names, so common endings such
+ * as "son" or "ini" are stored again in every branch. This class converts a
+ * built Trie into a minimal acyclic word graph (DAWG), where names share both
+ * their prefixes and their suffixes: any two nodes from which exactly the
+ * same name endings can be read are merged into one.
+ *
+ * As a node can now be the end of many names, student data can not be kept
+ * in the nodes. Every node stores instead how many names can be read from
+ * it, and these counts turn each name into its position in alphabetical
+ * order (a perfect hash of the names). Marks are kept in a side array indexed
+ * by that position, one slot per module.
+ *
+ * The graph is built with the incremental algorithm for sorted words by
+ * Daciuk et al., in O(n k) time, and then flattened into a few arrays: for
+ * every node the position of its first edge, its count and whether it ends
+ * a name; for every edge its character and target node.
+ *
+ * Lookups and prefix scans take O(k) time, k being the length of the name,
+ * plus the length of the listed names for prefix scans.
+ *
+ * @author Thomas Cilloni
+ */
+public class CompactRoster {
+    // marks slot of a module the student does not take
+    private static final int NO_MARK = Integer.MIN_VALUE;
+
+    private final int root;
+    private final int[] firstEdge; // edges of node i are firstEdge[i]..firstEdge[i+1]-1
+    private final int[] counts; // number of names readable from each node
+    private final boolean[] isName; // if the node ends a name
+    private final char[] labels; // character of each edge, sorted within a node
+    private final int[] targets; // node reached by each edge
+    private final String[] modules; // module of each marks slot
+    private final int[] marks; // marks of the student with ordinal i start at i*modules.length
+    private final String report;
+
+    /**
+     * Build a compact roster from a Trie or an OffHeapTrie.
+     * The database is only read, and it can be discarded once the roster is built.
+     *
+     * @param database the database of students to compact
+     * @return the compact, read-only copy of the database
+     */
+    public static CompactRoster compact(StudentDatabase database) {
+        return new CompactRoster(database);
+    }
+
+    private CompactRoster(StudentDatabase database) {
+        // a first visit finds the modules, each taken by at least one student
+        // getting a slot, and the number of students
+        TreeSet<String> allModules = new TreeSet<>();
+        int[] students = new int[1];
+        database.forEachStudent((name, studentMarks) -> {
+            allModules.addAll(studentMarks.keySet());
+            students[0]++;
+        });
+        modules = allModules.toArray(new String[0]);
+
+        // names come in alphabetical order, so each name's ordinal is its index
+        marks = new int[students[0] * modules.length];
+        Builder builder = new Builder();
+        int[] ordinal = new int[1];
+        database.forEachStudent((name, studentMarks) -> {
+            builder.add(name);
+            for (int m=0; m<modules.length; m++) {
+                Integer mark = studentMarks.get(modules[m]);
+                marks[ordinal[0] * modules.length + m] = mark == null ? NO_MARK : mark;
+            }
+            ordinal[0]++;
+        });
+        State start = builder.finish();
+
+        // number the states so that targets always come before their sources
+        List<State> states = new ArrayList<>();
+        IdentityHashMap<State, Integer> ids = new IdentityHashMap<>();
+        number(start, states, ids);
+
+        int edgeCount = 0;
+        for (State state: states)
+            edgeCount += state.targets.size();
+
+        firstEdge = new int[states.size()+1];
+        counts = new int[states.size()];
+        isName = new boolean[states.size()];
+        labels = new char[edgeCount];
+        targets = new int[edgeCount];
+
+        int edge = 0;
+        for (int i=0; i<states.size(); i++) {
+            State state = states.get(i);
+            firstEdge[i] = edge;
+            isName[i] = state.isName;
+            counts[i] = state.isName ? 1 : 0;
+
+            for (int j=0; j<state.targets.size(); j++) {
+                labels[edge] = state.labels.charAt(j);
+                targets[edge] = ids.get(state.targets.get(j));
+                counts[i] += counts[targets[edge]];
+                edge++;
+            }
+        }
+        firstEdge[states.size()] = edge;
+        root = ids.get(start);
+
+        // off-heap slabs reserve more than they use, show both
+        String name = database.getClass().getSimpleName();
+        if (database instanceof OffHeapTrie)
+            name += " (~"+((OffHeapTrie) database).getReservedBytes()+" bytes reserved)";
+        report = buildReport(students[0], name, database.getMemoryFootprint());
+    }
+    private static void number(State state, List<State> states, IdentityHashMap<State, Integer> ids) {
+        if (ids.containsKey(state))
+            return;
+
+        for (State target: state.targets)
+            number(target, states, ids);
+
+        ids.put(state, states.size());
+        states.add(state);
+    }
+
+    /**
+     * Get the position of a student in alphabetical order.
+     * The position is computed while following the name, adding up the
+     * names that come before it: those ending on the way and those readable
+     * from the edges with a smaller character.
+     *
+     * @param name of the student to look for
+     * @return the ordinal of the student, -1 if not found
+     */
+    public int ordinal(String name) {
+        int node = root;
+        int ordinal = 0;
+
+        for (int i=0; i<name.length(); i++) {
+            int edge = findEdge(node, name.charAt(i));
+            if (edge < 0)
+                return -1;
+
+            // names ending here or read from previous edges come first
+            if (isName[node])
+                ordinal++;
+            for (int e=firstEdge[node]; e<edge; e++)
+                ordinal += counts[targets[e]];
+
+            node = targets[edge];
+        }
+
+        return isName[node] ? ordinal : -1;
+    }
+
+    /**
+     * Check if a student is in the roster.
+     *
+     * @param name of the student to look for
+     * @return true if the student exists, false otherwise
+     */
+    public boolean contains(String name) {
+        return ordinal(name) >= 0;
+    }
+
+    /**
+     * Get the marks of the requested student.
+     *
+     * @param name of the student to look for
+     * @return a new map of the student's course-mark pairs, if exists, null otherwise
+     */
+    public HashMap<String, Integer> getMarks(String name) {
+        int ordinal = ordinal(name);
+
+        if (ordinal < 0)
+            return null;
+
+        HashMap<String, Integer> result = new HashMap<>();
+        for (int m=0; m<modules.length; m++)
+            if (marks[ordinal * modules.length + m] != NO_MARK)
+                result.put(modules[m], marks[ordinal * modules.length + m]);
+
+        return result;
+    }
+
+    /**
+     * Get all the students whose name starts with the given prefix.
+     *
+     * @param prefix beginning of the names, the empty string lists everyone
+     * @return the matching names, in alphabetical order
+     */
+    public List<String> getNamesWithPrefix(String prefix) {
+        List<String> names = new ArrayList<>();
+        int node = root;
+
+        for (int i=0; i<prefix.length(); i++) {
+            int edge = findEdge(node, prefix.charAt(i));
+            if (edge < 0)
+                return names;
+            node = targets[edge];
+        }
+
+        collect(node, new StringBuilder(prefix), names);
+        return names;
+    }
+    private void collect(int node, StringBuilder name, List<String> names) {
+        if (isName[node])
+            names.add(name.toString());
+
+        for (int e=firstEdge[node]; e<firstEdge[node+1]; e++) {
+            name.append(labels[e]);
+            collect(targets[e], name, names);
+            name.setLength(name.length()-1);
+        }
+    }
+
+    /**
+     * Get the number of students in the roster.
+     *
+     * @return the number of students
+     */
+    public int size() {
+        return counts[root];
+    }
+
+    /**
+     * Get a report of the memory saved by the compaction.
+     * The size of the original database is its memory footprint when the
+     * roster was built: for a Trie, the estimate of its whole node graph;
+     * for an OffHeapTrie, the records in use, with the capacity reserved by
+     * its slabs shown next to it. The roster is counted as its
+     * arrays, on a 64-bit JVM with compressed references.
+     *
+     * @return a printable report comparing the Trie and the roster
+     */
+    public String getReport() {
+        return report;
+    }
+
+    private int findEdge(int node, char character) {
+        // edges are sorted by character, so search them by bisection
+        int low = firstEdge[node];
+        int high = firstEdge[node+1]-1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (labels[middle] < character)
+                low = middle+1;
+            else if (labels[middle] > character)
+                high = middle-1;
+            else
+                return middle;
+        }
+
+        return -1;
+    }
+
+    private String buildReport(int students, String database, long databaseBytes) {
+        long rosterBytes = array(4L * firstEdge.length) + array(4L * counts.length)
+                + array(isName.length) + array(2L * labels.length) + array(4L * targets.length)
+                + array(4L * modules.length) + array(4L * marks.length);
+
+        return "Students: \t"+students+"\n"
+                + database+": \t~"+databaseBytes+" bytes\n"
+                + "Roster: \t"+counts.length+" nodes, "+labels.length+" edges, ~"+rosterBytes+" bytes\n"
+                + "Saved: \t\t~"+(databaseBytes - rosterBytes)+" bytes ("
+                + (databaseBytes == 0 ? 0 : 100 * (databaseBytes - rosterBytes) / databaseBytes)+"%)\n";
+    }
+    private static long array(long bytes) {
+        // array header, with the content padded to 8 bytes
+        return 16 + (bytes + 7) / 8 * 8;
+    }
+
+    /**
+     * Node of the graph while it is being built.
+     * Two states are equal when both end a name or not and have the same
+     * edges leading to the very same states. As states are registered only
+     * when they can no longer change, equal states can be merged.
+     */
+    private static class State {
+        private boolean isName;
+        private final StringBuilder labels = new StringBuilder();
+        private final List<State> targets = new ArrayList<>();
+
+        private State last() {
+            return targets.get(targets.size()-1);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof State))
+                return false;
+
+            State state = (State) other;
+            if (isName != state.isName || targets.size() != state.targets.size()
+                    || !labels.toString().equals(state.labels.toString()))
+                return false;
+
+            for (int i=0; i<targets.size(); i++)
+                if (targets.get(i) != state.targets.get(i))
+                    return false;
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = isName ? 1 : 0;
+            for (int i=0; i<targets.size(); i++)
+                hash = 31 * (31 * hash + labels.charAt(i)) + System.identityHashCode(targets.get(i));
+            return hash;
+        }
+    }
+
+    /**
+     * Incremental construction of a minimal graph from sorted names.
+     * Only the path of the last added name can still change: when a new name
+     * leaves it, the part that was left is minimized, replacing every state
+     * with an equal registered one or registering it.
+     */
+    private static class Builder {
+        private final State start = new State();
+        private final HashMap<State, State> register = new HashMap<>();
+
+        private void add(String name) {
+            // follow the part in common with the previous name
+            State state = start;
+            int i = 0;
+            while (i < name.length() && state.labels.length() > 0
+                    && state.labels.charAt(state.labels.length()-1) == name.charAt(i)) {
+                state = state.last();
+                i++;
+            }
+
+            // the rest of the previous name can not change anymore
+            if (!state.targets.isEmpty())
+                replaceOrRegister(state);
+
+            // append the rest of the new name
+            for (; i<name.length(); i++) {
+                State next = new State();
+                state.labels.append(name.charAt(i));
+                state.targets.add(next);
+                state = next;
+            }
+            state.isName = true;
+        }
+
+        private State finish() {
+            if (!start.targets.isEmpty())
+                replaceOrRegister(start);
+            return start;
+        }
+
+        private void replaceOrRegister(State state) {
+            State child = state.last();
+
+            if (!child.targets.isEmpty())
+                replaceOrRegister(child);
+
+            State equal = register.get(child);
+            if (equal != null)
+                state.targets.set(state.targets.size()-1, equal);
+            else
+                register.put(child, child);
+        }
+    }
+}
@@ -10,7 +10,7 @@ public class Grades {
     // menu choices
     List<String> choices = Arrays.asList("add", "delete", "search", "update", "list", "quit");
     Scanner input = new Scanner(System.in); // declared here because it's often used
-    Trie database = new Trie(); // the database of students implemented with a Trie structure
+    StudentDatabase database = new Trie(); // the database of students implemented with a Trie structure
     
     public static void main(String[] args){
         // create a new object from the main class to avoid static context problems
@@ -0,0 +1,73 @@
+package grades;
+
+/**
+ * A change made to a student's mark.
+ * Every time the Trie adds, changes or removes a mark of a student, an
+ * event is published on its ChangeFeed. Events are immutable and carry a
+ * sequence number, increasing by one for every event of the feed, that
+ * consumers can store to resume the feed from where they left.
+ *
+ * @author Thomas Cilloni
+ */
+public class MutationEvent {
+    /**
+     * The kind of change made to the mark.
+     */
+    public enum Type {
+        INSERT, // the student did not have the module
+        UPDATE, // the mark of the module changed
+        REMOVE  // the module (or the whole student) was removed
+    }
+
+    private final long sequence;
+    private final String student;
+    private final String module;
+    private final Integer oldMark; // null when the module is added
+    private final Integer newMark; // null when the module is removed
+
+    /**
+     * Constructor of a mutation event.
+     *
+     * @param sequence position of the event in the feed
+     * @param student name of the changed student
+     * @param module name of the changed module
+     * @param oldMark mark before the change, null if there was none
+     * @param newMark mark after the change, null if removed
+     */
+    public MutationEvent(long sequence, String student, String module, Integer oldMark, Integer newMark) {
+        this.sequence = sequence;
+        this.student = student;
+        this.module = module;
+        this.oldMark = oldMark;
+        this.newMark = newMark;
+    }
+
+    // GETTERS
+    public long getSequence() {
+        return sequence;
+    }
+    public String getStudent() {
+        return student;
+    }
+    public String getModule() {
+        return module;
+    }
+    public Integer getOldMark() {
+        return oldMark;
+    }
+    public Integer getNewMark() {
+        return newMark;
+    }
+    public Type getType() {
+        if (oldMark == null)
+            return Type.INSERT;
+        if (newMark == null)
+            return Type.REMOVE;
+        return Type.UPDATE;
+    }
+
+    @Override
+    public String toString() {
+        return "#"+sequence+" "+getType()+" "+student+", "+module+": "+oldMark+" -> "+newMark;
+    }
+}
@@ -0,0 +1,634 @@
+package grades;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Off-heap Trie Data structure for a database of students.
+ * This class offers the same operations as the Trie class, but instead of
+ * keeping a graph of Node objects (each one with its own HashMaps of children
+ * and marks) it lays out nodes and marks as fixed-size records inside direct
+ * ByteBuffers. Records point to each other with integer indexes rather than
+ * object references, so the garbage collector only sees a few buffers no
+ * matter how many students are stored.
+ *
+ * Every node record holds its character, a flag telling whether it contains a
+ * student, the index of its first child, the index of its next sibling and the
+ * index of its first mark. Every mark record holds the module (as an index in
+ * the small table of known modules), the mark and the index of the next mark.
+ * Records freed by removeName and removeCourses are kept in free lists and
+ * reused by the following insertions, so the buffers do not grow after
+ * students are deleted and re-added.
+ *
+ * Records are stored in slabs of a fixed number of records: the upper bits of
+ * an index give the slab, the lower bits the record inside it. When the slabs
+ * are full a new one is added, so growing never copies the existing records,
+ * and up to Integer.MAX_VALUE nodes and marks can be stored.
+ *
+ * Children are kept in a linked list of siblings, so traversing a node costs
+ * O(a) where a is the size of the alphabet; as the alphabet is small, the
+ * operations keep the O(k) time complexity of the Trie, k being the length of
+ * the longest student's name.
+ *
+ * @author Thomas Cilloni
+ */
+public class OffHeapTrie implements StudentDatabase {
+    // index used in place of a null reference
+    private static final int NIL = -1;
+    // the root is always the first node record
+    private static final int ROOT = 0;
+
+    // records per slab: an index is made of the slab and the record in the slab
+    private static final int SLAB_BITS = 16;
+    private static final int SLAB_RECORDS = 1 << SLAB_BITS;
+    private static final int SLAB_MASK = SLAB_RECORDS - 1;
+
+    // node record layout: value, flags, first child, next sibling, first mark
+    private static final int NODE_SIZE = 16;
+    private static final int NODE_VALUE = 0;
+    private static final int NODE_FLAGS = 2;
+    private static final int NODE_CHILD = 4;
+    private static final int NODE_SIBLING = 8;
+    private static final int NODE_MARKS = 12;
+    private static final short IS_NAME = 1;
+
+    // mark record layout: module, mark, next mark
+    private static final int MARK_SIZE = 12;
+    private static final int MARK_MODULE = 0;
+    private static final int MARK_VALUE = 4;
+    private static final int MARK_NEXT = 8;
+
+    private final List<ByteBuffer> nodes; // slabs of node records
+    private final List<ByteBuffer> marks; // slabs of mark records
+    private int nodeCount; // number of node records ever allocated
+    private int markCount; // number of mark records ever allocated
+    private int freeNodes; // head of the list of released node records
+    private int freeMarks; // head of the list of released mark records
+    private int releasedNodes; // number of node records in the free list
+    private int releasedMarks; // number of mark records in the free list
+
+    // module names are few, so they are kept on the heap and referenced by index
+    private final List<String> moduleNames;
+    private final HashMap<String, Integer> moduleIds;
+
+    // if set, receives an event for every change made to a student's marks
+    private ChangeFeed feed;
+
+    /**
+     * Initialize the off-heap Trie.
+     * The constructor does not require any parameter. It creates the
+     * root node, which has no value, in the first slab.
+     */
+    public OffHeapTrie() {
+        nodes = new ArrayList<>();
+        marks = new ArrayList<>();
+        nodeCount = 0;
+        markCount = 0;
+        freeNodes = NIL;
+        freeMarks = NIL;
+        moduleNames = new ArrayList<>();
+        moduleIds = new HashMap<>();
+
+        // do not assign any value to the root
+        newNode((char) 0);
+    }
+
+    /**
+     * Set the feed on which changes to the students are published.
+     *
+     * @param feed the feed receiving the changes, or null
+     */
+    public void setChangeFeed(ChangeFeed feed) {
+        this.feed = feed;
+    }
+
+    /**
+     * Add a new student to the tree.
+     * This method inserts a new entry in the tree or updates it
+     * if it exists already. Marks of modules the student already has
+     * are overwritten, the others are added.
+     *
+     * The time complexity is O(1), as the Trie needs to be traversed
+     * by the student's name with only k passes.
+     *
+     * @param name name of the student to add/update
+     * @param marks HashMap of course-grade pairs
+     */
+    public void insert(String name, HashMap<String, Integer> marks) {
+        // marks are stored as ints, check them before changing anything
+        if (marks.containsValue(null))
+            throw new IllegalArgumentException("Marks of "+name+" can not be null");
+
+        // start from the root
+        int node = ROOT;
+
+        // and navigate down the tree following the name as path,
+        // creating the nodes that are not there yet
+        for (int i=0; i<name.length(); i++) {
+            char character = name.charAt(i);
+            int child = findChild(node, character);
+
+            if (child == NIL) {
+                // construction and connection of a new node
+                child = newNode(character);
+                putNodeInt(child, NODE_SIBLING, firstChild(node));
+                putNodeInt(node, NODE_CHILD, child);
+            }
+
+            node = child;
+        }
+
+        // keep the old marks, the changes are published once they are made
+        HashMap<String, Integer> before = new HashMap<>();
+        if (feed != null && isName(node))
+            before.putAll(marksOf(node));
+
+        // at the end, give the last node the marks of the student
+        for (String module: marks.keySet())
+            setMark(node, moduleId(module), marks.get(module));
+        setIsName(node, true);
+
+        if (feed != null)
+            for (String module: marks.keySet())
+                feed.publish(name, module, before.get(module), marks.get(module));
+    }
+
+    /**
+     * Get the marks of the requested student.
+     * The marks are copied from the slabs into a new HashMap, so changing
+     * the returned map does not change the database.
+     *
+     * The time complexity is O(1) as the Trie is simply traversed once.
+     *
+     * @param name of the student to look for
+     * @return the student's course-mark pairs, if exists, null otherwise
+     */
+    public HashMap<String, Integer> getMarks(String name) {
+        int node = find(name);
+
+        if (node == NIL)
+            return null;
+        return marksOf(node);
+    }
+
+    /**
+     * Get a detached node with the data of the requested student.
+     * As there are no Node objects in this Trie, a new one is built with
+     * the student's marks so that code written for the Trie class can read
+     * it. Changes made to the returned node are not saved in the database.
+     *
+     * @param name of the student to look for
+     * @return a node with the student's data, if exists, null otherwise
+     */
+    public Node getNode(String name) {
+        int node = find(name);
+
+        if (node == NIL)
+            return null;
+        return detach(node);
+    }
+
+    /**
+     * Remove a student from the database given its name.
+     * The student's marks are released, then the nodes of the name are
+     * released from bottom to top as long as they do not contain other
+     * students or lead to other students. Released records go back to the
+     * free lists to be reused.
+     *
+     * The time complexity is O(1).
+     *
+     * @param name of the student to remove
+     * @return true if removed successfully, false otherwise
+     */
+    public boolean removeName(String name) {
+        // keep track of the path, it is needed to delete nodes bottom-up
+        int[] path = new int[name.length()+1];
+        path[0] = ROOT;
+
+        for (int i=0; i<name.length(); i++) {
+            path[i+1] = findChild(path[i], name.charAt(i));
+            if (path[i+1] == NIL)
+                return false;
+        }
+
+        int node = path[name.length()];
+        if (!isName(node))
+            return false;
+
+        // reset the student's marks and mark it as a normal node
+        HashMap<String, Integer> before = feed != null ? marksOf(node) : null;
+        int mark = firstMark(node);
+        while (mark != NIL) {
+            int next = nextMark(mark);
+            releaseMark(mark);
+            mark = next;
+        }
+        putNodeInt(node, NODE_MARKS, NIL);
+        setIsName(node, false);
+
+        // delete the nodes that do not lead to other students
+        for (int i=name.length(); i>0; i--) {
+            node = path[i];
+            if (isName(node) || firstChild(node) != NIL)
+                break;
+            unlinkChild(path[i-1], node);
+            releaseNode(node);
+        }
+
+        // the removal is done, publish it
+        if (feed != null)
+            for (String module: before.keySet())
+                feed.publish(name, module, before.get(module), null);
+
+        return true;
+    }
+
+    /**
+     * Remove the requested courses from a student.
+     *
+     * Its time complexity is O(1): the student's node is first retrieved (if exists)
+     * then the given modules are removed from its list of marks.
+     *
+     * @param data must contain the student's name at index 0 and the
+     * module names at the other indexes
+     * @return the number of successfully removed courses from the student
+     */
+    public int removeCourses(String data[]) {
+        int node = find(data[0]);
+
+        if (node == NIL)
+            return -1;
+
+        // removed marks are published once all of them are removed
+        LinkedHashMap<String, Integer> removed = new LinkedHashMap<>();
+        for (int i=1; i<data.length; i++) {
+            Integer module = moduleIds.get(data[i]);
+            int mark = module == null ? NIL : findMark(node, module);
+
+            if (mark != NIL) {
+                removed.put(data[i], markValue(mark));
+                removeMark(node, mark);
+            }
+        }
+
+        if (feed != null)
+            for (String module: removed.keySet())
+                feed.publish(data[0], module, removed.get(module), null);
+
+        return removed.size();
+    }
+
+    /**
+     * Get a list of mark-student strings following the given course.
+     * The list is ordered by marks (high to low) and, where marks are the
+     * same, alphabetically by name, exactly as the one of the Trie class.
+     *
+     * The time complexity is O(n log n), n being the number of students
+     * following the given module: all students are visited once and the
+     * ones taking the module are then sorted.
+     *
+     * @param module name of the course
+     * @return a list of ordered strings to print on screen
+     */
+    public List<String> getStudents(String module) {
+        List<String> stuNames = new ArrayList<>();
+        List<Integer> stuGrades = new ArrayList<>();
+
+        Integer id = moduleIds.get(module);
+        if (id != null)
+            collect(firstChild(ROOT), new StringBuilder(), id, stuNames, stuGrades);
+
+        // sort the positions of the two lists together
+        List<Integer> order = new ArrayList<>();
+        for (int i=0; i<stuNames.size(); i++)
+            order.add(i);
+        order.sort((a, b) -> {
+            int byGrade = stuGrades.get(b).compareTo(stuGrades.get(a));
+            return byGrade != 0 ? byGrade : stuNames.get(a).compareTo(stuNames.get(b));
+        });
+
+        // display the average mark of the module
+        long average = 0;
+        for (Integer mark: stuGrades)
+            average += mark;
+        if (!stuGrades.isEmpty())
+            average = average/stuGrades.size();
+
+        System.out.println("The average for the "+module+" course is "+average);
+
+        List<String> finalList = new ArrayList<>();
+        for (int i: order)
+            finalList.add(stuGrades.get(i)+"\t"+stuNames.get(i));
+
+        return finalList;
+    }
+    private void collect(int node, StringBuilder name, int module,
+            List<String> stuNames, List<Integer> stuGrades) {
+        // visit all siblings here and recurse only down the Trie
+        for (; node != NIL; node = nextSibling(node)) {
+            name.append(getNodeChar(node));
+
+            if (isName(node)) {
+                int mark = findMark(node, module);
+                if (mark != NIL) {
+                    stuNames.add(name.toString());
+                    stuGrades.add(markValue(mark));
+                }
+            }
+            collect(firstChild(node), name, module, stuNames, stuGrades);
+
+            name.setLength(name.length()-1);
+        }
+    }
+
+    /**
+     * Get all the students of the database ordered by name.
+     * Like getNode, the returned nodes are detached copies of the
+     * students' data.
+     *
+     * The time complexity is O(n log n), n being the number of students.
+     *
+     * @return a map of student names to nodes with their data, ordered by name
+     */
+    public TreeMap<String, Node> getStudentNodes() {
+        TreeMap<String, Node> students = new TreeMap<>();
+        getStudentNodes(ROOT, new StringBuilder(), students);
+        return students;
+    }
+    private void getStudentNodes(int node, StringBuilder name, TreeMap<String, Node> students) {
+        if (isName(node))
+            students.put(name.toString(), detach(node));
+
+        for (int child = firstChild(node); child != NIL; child = nextSibling(child)) {
+            name.append(getNodeChar(child));
+            getStudentNodes(child, name, students);
+            name.setLength(name.length()-1);
+        }
+    }
+
+    /**
+     * Visit all the students of the database in alphabetical order.
+     * No object is created per student: the visitor always receives the
+     * same map, refilled with the marks of each student.
+     *
+     * The time complexity is O(m), m being the number of nodes, as the
+     * children of each node are sorted by their few characters.
+     *
+     * @param visitor receives the name and the marks of each student
+     */
+    public void forEachStudent(BiConsumer<String, Map<String, Integer>> visitor) {
+        forEachStudent(ROOT, new StringBuilder(), new HashMap<>(), visitor);
+    }
+    private void forEachStudent(int node, StringBuilder name, HashMap<String, Integer> studentMarks,
+            BiConsumer<String, Map<String, Integer>> visitor) {
+        if (isName(node)) {
+            studentMarks.clear();
+            for (int mark = firstMark(node); mark != NIL; mark = nextMark(mark))
+                studentMarks.put(moduleNames.get(getMarkInt(mark, MARK_MODULE)), markValue(mark));
+            visitor.accept(name.toString(), studentMarks);
+        }
+
+        // siblings are kept in insertion order, so sort them by character
+        int children = 0;
+        for (int child = firstChild(node); child != NIL; child = nextSibling(child))
+            children++;
+        long[] sorted = new long[children];
+        int i = 0;
+        for (int child = firstChild(node); child != NIL; child = nextSibling(child))
+            sorted[i++] = (long) getNodeChar(child) << 32 | child;
+        Arrays.sort(sorted);
+
+        for (long child: sorted) {
+            name.append((char) (child >>> 32));
+            forEachStudent((int) child, name, studentMarks, visitor);
+            name.setLength(name.length()-1);
+        }
+    }
+
+    /**
+     * Get the number of bytes reserved by the slabs.
+     * This is the whole off-heap footprint of the database, free
+     * records included.
+     *
+     * @return the capacity of the node and mark slabs, in bytes
+     */
+    public long getReservedBytes() {
+        return (long) nodes.size() * SLAB_RECORDS * NODE_SIZE
+                + (long) marks.size() * SLAB_RECORDS * MARK_SIZE;
+    }
+
+    /**
+     * Get the memory taken by the students' data.
+     * Only the records in use are counted: the unused part of the slabs and
+     * the released records waiting to be reused are not, so that the figure
+     * grows and shrinks with the database. getReservedBytes gives the whole
+     * capacity of the slabs.
+     *
+     * @return the number of bytes of the node and mark records in use
+     */
+    public long getMemoryFootprint() {
+        return (long) (nodeCount - releasedNodes) * NODE_SIZE
+                + (long) (markCount - releasedMarks) * MARK_SIZE;
+    }
+
+    // NODE RECORDS
+    private int find(String name) {
+        int node = ROOT;
+
+        for (int i=0; i<name.length() && node != NIL; i++)
+            node = findChild(node, name.charAt(i));
+
+        if (node != NIL && isName(node))
+            return node;
+        return NIL;
+    }
+    private int findChild(int node, char character) {
+        for (int child = firstChild(node); child != NIL; child = nextSibling(child))
+            if (getNodeChar(child) == character)
+                return child;
+        return NIL;
+    }
+    private void unlinkChild(int parent, int child) {
+        // the child is either the head of the list or follows a sibling
+        if (firstChild(parent) == child) {
+            putNodeInt(parent, NODE_CHILD, nextSibling(child));
+            return;
+        }
+
+        int previous = firstChild(parent);
+        while (nextSibling(previous) != child)
+            previous = nextSibling(previous);
+        putNodeInt(previous, NODE_SIBLING, nextSibling(child));
+    }
+    private Node detach(int node) {
+        Node copy = new Node(getNodeChar(node));
+        copy.setMarks(marksOf(node));
+        copy.setIsName(isName(node));
+        copy.setLeaf(firstChild(node) == NIL);
+        return copy;
+    }
+    private int firstChild(int node) {
+        return getNodeInt(node, NODE_CHILD);
+    }
+    private int nextSibling(int node) {
+        return getNodeInt(node, NODE_SIBLING);
+    }
+    private int firstMark(int node) {
+        return getNodeInt(node, NODE_MARKS);
+    }
+    private boolean isName(int node) {
+        return (nodes.get(node >>> SLAB_BITS).getShort(nodeOffset(node, NODE_FLAGS)) & IS_NAME) != 0;
+    }
+    private void setIsName(int node, boolean value) {
+        nodes.get(node >>> SLAB_BITS).putShort(nodeOffset(node, NODE_FLAGS), value ? IS_NAME : 0);
+    }
+    private char getNodeChar(int node) {
+        return nodes.get(node >>> SLAB_BITS).getChar(nodeOffset(node, NODE_VALUE));
+    }
+    private int getNodeInt(int node, int field) {
+        return nodes.get(node >>> SLAB_BITS).getInt(nodeOffset(node, field));
+    }
+    private void putNodeInt(int node, int field, int value) {
+        nodes.get(node >>> SLAB_BITS).putInt(nodeOffset(node, field), value);
+    }
+    private static int nodeOffset(int node, int field) {
+        return (node & SLAB_MASK) * NODE_SIZE + field;
+    }
+    private int newNode(char character) {
+        int node;
+
+        // reuse a released record if there is one
+        if (freeNodes != NIL) {
+            node = freeNodes;
+            freeNodes = nextSibling(node);
+            releasedNodes--;
+        }
+        else {
+            node = nodeCount;
+            nodeCount = nextRecord(nodes, nodeCount, NODE_SIZE);
+        }
+
+        ByteBuffer slab = nodes.get(node >>> SLAB_BITS);
+        slab.putChar(nodeOffset(node, NODE_VALUE), character);
+        slab.putShort(nodeOffset(node, NODE_FLAGS), (short) 0);
+        slab.putInt(nodeOffset(node, NODE_CHILD), NIL);
+        slab.putInt(nodeOffset(node, NODE_SIBLING), NIL);
+        slab.putInt(nodeOffset(node, NODE_MARKS), NIL);
+        return node;
+    }
+    private void releaseNode(int node) {
+        // released records are chained through their sibling field
+        putNodeInt(node, NODE_SIBLING, freeNodes);
+        freeNodes = node;
+        releasedNodes++;
+    }
+
+    // MARK RECORDS
+    private int moduleId(String module) {
+        Integer id = moduleIds.get(module);
+
+        if (id == null) {
+            id = moduleNames.size();
+            moduleNames.add(module);
+            moduleIds.put(module, id);
+        }
+
+        return id;
+    }
+    private HashMap<String, Integer> marksOf(int node) {
+        HashMap<String, Integer> result = new HashMap<>();
+        for (int mark = firstMark(node); mark != NIL; mark = nextMark(mark))
+            result.put(moduleNames.get(getMarkInt(mark, MARK_MODULE)), markValue(mark));
+        return result;
+    }
+    private int nextMark(int mark) {
+        return getMarkInt(mark, MARK_NEXT);
+    }
+    private int markValue(int mark) {
+        return getMarkInt(mark, MARK_VALUE);
+    }
+    private int findMark(int node, int module) {
+        for (int mark = firstMark(node); mark != NIL; mark = nextMark(mark))
+            if (getMarkInt(mark, MARK_MODULE) == module)
+                return mark;
+        return NIL;
+    }
+    private void setMark(int node, int module, int value) {
+        int mark = findMark(node, module);
+
+        // a new module is put at the head of the student's list
+        if (mark == NIL) {
+            mark = newMark();
+            putMarkInt(mark, MARK_MODULE, module);
+            putMarkInt(mark, MARK_NEXT, firstMark(node));
+            putNodeInt(node, NODE_MARKS, mark);
+        }
+
+        putMarkInt(mark, MARK_VALUE, value);
+    }
+    private void removeMark(int node, int mark) {
+        // the mark is either the head of the list or follows another mark
+        if (firstMark(node) == mark)
+            putNodeInt(node, NODE_MARKS, nextMark(mark));
+        else {
+            int previous = firstMark(node);
+            while (nextMark(previous) != mark)
+                previous = nextMark(previous);
+            putMarkInt(previous, MARK_NEXT, nextMark(mark));
+        }
+        releaseMark(mark);
+    }
+    private int getMarkInt(int mark, int field) {
+        return marks.get(mark >>> SLAB_BITS).getInt((mark & SLAB_MASK) * MARK_SIZE + field);
+    }
+    private void putMarkInt(int mark, int field, int value) {
+        marks.get(mark >>> SLAB_BITS).putInt((mark & SLAB_MASK) * MARK_SIZE + field, value);
+    }
+    private int newMark() {
+        // reuse a released record if there is one
+        if (freeMarks != NIL) {
+            int mark = freeMarks;
+            freeMarks = nextMark(mark);
+            releasedMarks--;
+            return mark;
+        }
+
+        int mark = markCount;
+        markCount = nextRecord(marks, markCount, MARK_SIZE);
+        return mark;
+    }
+    private void releaseMark(int mark) {
+        putMarkInt(mark, MARK_NEXT, freeMarks);
+        freeMarks = mark;
+        releasedMarks++;
+    }
+
+    /**
+     * Make room for one more record.
+     * If all the slabs are full, a new one is added; the existing slabs
+     * are never copied nor moved.
+     *
+     * @param slabs the slabs of the records
+     * @param count number of records allocated so far
+     * @param size size of a record, in bytes
+     * @return the number of records allocated, including the new one
+     */
+    private static int nextRecord(List<ByteBuffer> slabs, int count, int size) {
+        if (count == Integer.MAX_VALUE)
+            throw new IllegalStateException("Off-heap storage is full");
+
+        if (count == (long) slabs.size() * SLAB_RECORDS)
+            // the layout is never written out, so use the platform's byte order
+            slabs.add(ByteBuffer.allocateDirect(SLAB_RECORDS * size).order(ByteOrder.nativeOrder()));
+
+        return count+1;
+    }
+}
@@ -0,0 +1,138 @@
+package grades;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compare the CommandPipeline with direct synchronous calls to a Trie.
+ * A number of writer threads send bursts of insertions to the database,
+ * first calling a Trie shared through a lock, then submitting them to a
+ * CommandPipeline. For both, the total throughput and the 50th, 99th and
+ * 99.9th percentile latency of a single insertion are printed.
+ *
+ * Both modes measure latency the same way: from the start of the burst the
+ * insertion belongs to until the insertion is done, that is until the call
+ * returns or the future completes. A writer finding the ring buffer full
+ * parks for a while instead of spinning, leaving the CPU to the pipeline.
+ *
+ * Usage: PipelineBenchmark [threads] [bursts per thread] [burst size]
+ *
+ * @author Thomas Cilloni
+ */
+public class PipelineBenchmark {
+    private static final String[] MODULES = {"Database", "Data Structure", "Operating System", "Mathematics", "System Design"};
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int bursts = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int burstSize = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+
+        // run both twice, the first round only warms up the JVM
+        for (int round=0; round<2; round++) {
+            report("synchronous", run(threads, bursts, burstSize, false));
+            report("pipeline", run(threads, bursts, burstSize, true));
+        }
+    }
+
+    private static long[] run(int threads, int bursts, int burstSize, boolean pipelined) throws Exception {
+        Trie database = new Trie();
+        CommandPipeline pipeline = pipelined ? new CommandPipeline(database, 1 << 16, 1024) : null;
+        long[] latencies = new long[threads * bursts * burstSize];
+        Thread[] writers = new Thread[threads];
+
+        long start = System.nanoTime();
+        for (int t=0; t<threads; t++) {
+            int first = t * bursts * burstSize;
+            Random random = new Random(t);
+
+            writers[t] = new Thread(() -> {
+                for (int b=0; b<bursts; b++) {
+                    CompletableFuture<?>[] burst = new CompletableFuture<?>[burstSize];
+                    long burstStart = System.nanoTime();
+
+                    for (int i=0; i<burstSize; i++) {
+                        int op = first + b * burstSize + i;
+                        String name = randomName(random);
+                        HashMap<String, Integer> marks = new HashMap<>();
+                        marks.put(MODULES[random.nextInt(MODULES.length)], random.nextInt(101));
+
+                        if (pipelined) {
+                            CompletableFuture<Void> result = pipeline.insert(name, marks);
+                            // wait for room if the burst filled the ring buffer
+                            while (isFull(result)) {
+                                LockSupport.parkNanos(50_000);
+                                result = pipeline.insert(name, marks);
+                            }
+                            burst[i] = result.thenRun(() -> latencies[op] = System.nanoTime() - burstStart);
+                        }
+                        else {
+                            synchronized (database) {
+                                database.insert(name, marks);
+                            }
+                            latencies[op] = System.nanoTime() - burstStart;
+                        }
+                    }
+
+                    // the next burst starts once this one is done
+                    if (pipelined)
+                        CompletableFuture.allOf(burst).join();
+                }
+            });
+            writers[t].start();
+        }
+
+        for (Thread writer: writers)
+            writer.join();
+        long elapsed = System.nanoTime() - start;
+
+        if (pipelined)
+            pipeline.close();
+
+        // the last element holds the total time of the run
+        long[] result = Arrays.copyOf(latencies, latencies.length+1);
+        result[latencies.length] = elapsed;
+        return result;
+    }
+
+    private static boolean isFull(CompletableFuture<?> result) {
+        if (!result.isCompletedExceptionally())
+            return false;
+
+        // only a full ring is worth retrying, any other failure is thrown
+        try {
+            result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof CommandPipeline.FullException)
+                return true;
+            throw e;
+        }
+        return false;
+    }
+
+    private static void report(String name, long[] result) {
+        long elapsed = result[result.length-1];
+        long[] latencies = Arrays.copyOf(result, result.length-1);
+        Arrays.sort(latencies);
+
+        System.out.printf("%-12s %10.0f ops/s   p50 %8.1f us   p99 %8.1f us   p99.9 %8.1f us%n",
+                name, latencies.length / (elapsed / 1e9),
+                percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 0.999));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length-1, sorted.length * p)] / 1e3;
+    }
+
+    private static String randomName(Random random) {
+        // names of 2 to 10 lower case letters, starting with a capital one
+        char[] name = new char[2 + random.nextInt(9)];
+        name[0] = (char) ('A' + random.nextInt(26));
+        for (int i=1; i<name.length; i++)
+            name[i] = (char) ('a' + random.nextInt(26));
+        return new String(name);
+    }
+}
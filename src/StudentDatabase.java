@@ -0,0 +1,98 @@
+package grades;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Operations of a database of students.
+ * This interface is implemented by the Trie, which keeps its nodes as
+ * objects on the heap, and by the OffHeapTrie, which keeps them in direct
+ * buffers. Grades, CommandPipeline and CompactRoster only use these
+ * operations, so they work with either storage.
+ *
+ * @author Thomas Cilloni
+ */
+public interface StudentDatabase {
+    /**
+     * Add a new student or update an existing one.
+     * Marks of modules the student already has are overwritten,
+     * the others are added.
+     *
+     * @param name name of the student to add/update
+     * @param marks HashMap of course-grade pairs
+     */
+    void insert(String name, HashMap<String, Integer> marks);
+
+    /**
+     * Get the node containing the data of the requested student.
+     *
+     * @param name of the student to look for
+     * @return a node with the student's data, if exists, null otherwise
+     */
+    Node getNode(String name);
+
+    /**
+     * Remove a student from the database given its name.
+     *
+     * @param name of the student to remove
+     * @return true if removed successfully, false otherwise
+     */
+    boolean removeName(String name);
+
+    /**
+     * Remove the requested courses from a student.
+     *
+     * @param data must contain the student's name at index 0 and the
+     * module names at the other indexes
+     * @return the number of removed courses, -1 if the student was not found
+     */
+    int removeCourses(String data[]);
+
+    /**
+     * Get a list of mark-student strings following the given course.
+     * The list is ordered by marks (high to low) and, where marks are
+     * the same, alphabetically by name.
+     *
+     * @param module name of the course
+     * @return a list of ordered strings to print on screen
+     */
+    List<String> getStudents(String module);
+
+    /**
+     * Get all the students of the database ordered by name.
+     *
+     * @return a map of student names to nodes with their data, ordered by name
+     */
+    TreeMap<String, Node> getStudentNodes();
+
+    /**
+     * Visit all the students of the database in alphabetical order.
+     * Unlike getStudentNodes, nothing is built for the whole database: each
+     * student is passed to the visitor as soon as it is reached. The map of
+     * marks is only valid during the call and may be reused for the next
+     * student, so it must not be changed nor kept; copy it if needed.
+     *
+     * @param visitor receives the name and the marks of each student
+     */
+    void forEachStudent(BiConsumer<String, Map<String, Integer>> visitor);
+
+    /**
+     * Set the feed on which changes to the students are published.
+     * Every mark added, changed or removed by insert, removeName and
+     * removeCourses is published as a MutationEvent. Passing null stops
+     * the publishing.
+     *
+     * @param feed the feed receiving the changes, or null
+     */
+    void setChangeFeed(ChangeFeed feed);
+
+    /**
+     * Get the memory taken by the students' data.
+     *
+     * @return the number of bytes used by the database
+     */
+    long getMemoryFootprint();
+}
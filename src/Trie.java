@@ -2,8 +2,13 @@
 package grades;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
 
 /**
  * Trie Data structure for a database of students.
@@ -22,9 +27,11 @@ import java.util.List;
  * 
  * @author Thomas Cilloni
  */
-public class Trie {
+public class Trie implements StudentDatabase {
     // the Trie has a starting node called root with no value
     private Node root;
+    // if set, receives an event for every change made to a student's marks
+    private ChangeFeed feed;
     
     /**
      * Initialize the Trie.
@@ -37,6 +44,18 @@ public class Trie {
         root = new Node((char) 0);
     }
     
+    /**
+     * Set the feed on which changes to the students are published.
+     * From now on, every mark added, changed or removed by insert, removeName
+     * and removeCourses is published as a MutationEvent. Passing null stops
+     * the publishing.
+     * 
+     * @param feed the feed receiving the changes, or null
+     */
+    public void setChangeFeed(ChangeFeed feed) {
+        this.feed = feed;
+    }
+    
     /**
      * Add a new student node to the tree.
      * This method inserts a new entry in the tree or updates it
@@ -82,12 +101,21 @@ public class Trie {
             }
         }
         
+        // keep the old marks, the changes are published once they are made
+        HashMap<String, Integer> before = new HashMap<>();
+        if (feed != null && node.isName())
+            before.putAll(node.getMarks());
+        
         // at the end, give the node containing the last letter of the name
         // the marks of the student and set it as leaf (possibly)
         node.setMarks(marks);
         node.setIsName(true);
         if (node.getChildren().isEmpty())
             node.setLeaf(true);
+        
+        if (feed != null)
+            for (String module: marks.keySet())
+                feed.publish(name, module, before.get(module), marks.get(module));
     }
     
     /**
@@ -147,8 +175,15 @@ public class Trie {
      * @return true if removed successfully, false otherwise
      */
     public boolean removeName(String name) {
-        if (getNode(name) != null) {
+        Node student = getNode(name);
+        if (student != null) {
+            // every mark of the student is removed with it, and published
+            // only once the removal succeeded
+            HashMap<String, Integer> before = new HashMap<>(student.getMarks());
             remove(root.getChildren().get(name.charAt(0)), name, 1);
+            if (feed != null)
+                for (String module: before.keySet())
+                    feed.publish(name, module, before.get(module), null);
             return true;
         }
         return false;
@@ -159,7 +194,7 @@ public class Trie {
         // check the entire student: if there are children, do not delete!
         if (pos==name.length()-1) {
             Node nodeEDIT = node.getChildren().get(c);
-            nodeEDIT.setMarks(new HashMap<>()); // reset the student's marks
+            nodeEDIT.getMarks().clear(); // reset the student's marks
             nodeEDIT.setIsName(false);  // mark it as a normal node without student data
             
             if (nodeEDIT.getChildren().isEmpty()) 
@@ -211,7 +246,16 @@ public class Trie {
         Node student = getNode(data[0]);
         
         if (student != null) {
-            return student.deleteMarks(data);
+            HashMap<String, Integer> before = new HashMap<>(student.getMarks());
+            int deletedMarks = student.deleteMarks(data);
+            
+            // publish the marks that were actually removed
+            // (once per module, even if it is repeated in data)
+            if (feed != null)
+                for (String module: new LinkedHashSet<>(Arrays.asList(data).subList(1, data.length)))
+                    if (before.get(module) != null && student.getMarksOf(module) == null)
+                        feed.publish(data[0], module, before.get(module), null);
+            return deletedMarks;
         }
             
         return -1;
@@ -311,4 +355,108 @@ public class Trie {
         
         return nodes;
     }
+    
+    /**
+     * Get all the students of the database ordered by name.
+     * This method visits the whole Trie and returns the nodes containing
+     * student data, mapped by the student's name. The nodes are the ones of
+     * the Trie, so they must not be changed by the caller.
+     * 
+     * The time complexity is O(n log n), n being the number of students:
+     * every node is visited once and names are kept in order while inserted.
+     * 
+     * @return a map of student names to their nodes, ordered by name
+     */
+    public TreeMap<String, Node> getStudentNodes() {
+        TreeMap<String, Node> students = new TreeMap<>();
+        getStudentNodes(root, new StringBuilder(), students);
+        return students;
+    }
+    private void getStudentNodes(Node node, StringBuilder name, TreeMap<String, Node> students) {
+        if (node.isName())
+            students.put(name.toString(), node);
+        
+        for (Node child: node.getChildren().values()) {
+            name.append(child.getValue());
+            getStudentNodes(child, name, students);
+            name.setLength(name.length()-1);
+        }
+    }
+    
+    /**
+     * Visit all the students of the database in alphabetical order.
+     * The visitor receives the marks of the student's node itself, which
+     * must not be changed.
+     * 
+     * The time complexity is O(m), m being the number of nodes, as the
+     * children of each node are sorted by their few characters.
+     * 
+     * @param visitor receives the name and the marks of each student
+     */
+    public void forEachStudent(BiConsumer<String, Map<String, Integer>> visitor) {
+        forEachStudent(root, new StringBuilder(), visitor);
+    }
+    private void forEachStudent(Node node, StringBuilder name, BiConsumer<String, Map<String, Integer>> visitor) {
+        if (node.isName())
+            visitor.accept(name.toString(), node.getMarks());
+        
+        // the children of a node are few, sorting them keeps the names in order
+        for (Node child: new TreeMap<>(node.getChildren()).values()) {
+            name.append(child.getValue());
+            forEachStudent(child, name, visitor);
+            name.setLength(name.length()-1);
+        }
+    }
+    
+    /**
+     * Estimate the memory taken by the Trie's nodes.
+     * This method walks every node reachable from the root, including nodes
+     * left behind by removals, and adds up the size of each Node object with
+     * its children and marks HashMaps. Sizes are the ones of a 64-bit JVM with
+     * compressed references: a Node takes 24 bytes, a HashMap 48 bytes, each
+     * of its entries 32 bytes and its table 16 bytes plus 4 per bucket. Boxed
+     * characters and marks outside the JVM's caches add 16 bytes each; module
+     * names are shared and not counted.
+     * 
+     * The time complexity is O(m), m being the number of nodes in the Trie.
+     * 
+     * @return the estimated number of bytes used by the nodes
+     */
+    public long getMemoryFootprint() {
+        return getMemoryFootprint(root);
+    }
+    private long getMemoryFootprint(Node node) {
+        HashMap<Character, Node> children = node.getChildren();
+        HashMap<String, Integer> marks = node.getMarks();
+        
+        // the node and its two maps
+        long bytes = 24 + 48 + 48;
+        
+        // children are added one by one, so the table starts at 16 buckets and
+        // doubles whenever it is more than 3/4 full
+        if (!children.isEmpty()) {
+            int buckets = 16;
+            while (children.size() > buckets / 4 * 3)
+                buckets *= 2;
+            bytes += 16 + 4L * buckets + 32L * children.size();
+        }
+        for (Node child: children.values()) {
+            if (child.getValue() > 127)
+                bytes += 16;
+            bytes += getMemoryFootprint(child);
+        }
+        
+        // marks are added all together, so the table is sized on them
+        if (!marks.isEmpty()) {
+            int buckets = 1;
+            while (buckets < (int) (marks.size() / 0.75f + 1.0f))
+                buckets *= 2;
+            bytes += 16 + 4L * buckets + 32L * marks.size();
+        }
+        for (Integer mark: marks.values())
+            if (mark < -128 || mark > 127)
+                bytes += 16;
+        
+        return bytes;
+    }
 }